@@ -0,0 +1,244 @@
+package editor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Self-check for collaborative editing that needs no window: round-trips the wire
+ * format, feeds the server malformed input, runs a server with several in-process
+ * clients making random concurrent edits until they all agree, and checks that the
+ * server only keeps the history its clients still need.
+ *
+ * Run with: javac editor/CollabCheck.java && java editor.CollabCheck
+ */
+public class CollabCheck {
+
+    static final int CLIENTS = 4;
+    static final int TRIALS = 40;
+    static final int ROUNDS = 200;
+    static final long SYNC_TIMEOUT_MILLIS = 10000;
+    // revisions made while one client types and another sits idle
+    static final int TYPED_REVISIONS = 20 * CollabClient.SEEN_INTERVAL;
+    // batches the idle client's latest report may still be behind the typing by
+    static final int REPORT_SLACK = 8;
+
+    public static void main(String[] args) throws Exception {
+        checkCodec();
+        checkMalformedInput();
+        checkConvergence();
+        checkHistoryTrimming();
+        System.out.println("All collaboration checks passed");
+    }
+
+    static void checkCodec() throws IOException {
+        // typing "abc" at 5 is one insert run
+        List<TextOp> typing = Arrays.asList(
+                TextOp.insert(5, 'a', 1), TextOp.insert(6, 'b', 1), TextOp.insert(7, 'c', 1));
+        byte[] bytes = roundTrip(typing);
+        check(bytes[0] == TextOp.TAG_INSERT && bytes.length == 7, "insert run encoding");
+
+        // three backspaces from 9 is one run with step -1
+        List<TextOp> backspace = Arrays.asList(
+                TextOp.delete(9, 1), TextOp.delete(8, 1), TextOp.delete(7, 1));
+        bytes = roundTrip(backspace);
+        check(bytes[0] == TextOp.TAG_BACKSPACE && bytes.length == 4, "backspace run encoding");
+
+        // three forward deletes at 2 is one run with step 0
+        List<TextOp> forward = Arrays.asList(
+                TextOp.delete(2, 1), TextOp.delete(2, 1), TextOp.delete(2, 1));
+        bytes = roundTrip(forward);
+        check(bytes[0] == TextOp.TAG_DELETE && bytes.length == 4, "forward delete run encoding");
+
+        // a mixed batch, including chars and positions that need multi-byte varints
+        List<TextOp> mixed = Arrays.asList(
+                TextOp.insert(0, '\u20ac', 1), TextOp.insert(1, 'x', 1),
+                TextOp.delete(1, 1), TextOp.delete(0, 1),
+                TextOp.insert(300, '\n', 1),
+                TextOp.delete(70000, 1), TextOp.delete(70000, 1),
+                TextOp.delete(4, 1), TextOp.insert(4, 'y', 1));
+        roundTrip(mixed);
+
+        roundTrip(new ArrayList<TextOp>());
+    }
+
+    static byte[] roundTrip(List<TextOp> ops) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TextOp.writeOps(out, ops);
+        byte[] bytes = out.toByteArray();
+        List<TextOp> read = TextOp.readOps(new ByteArrayInputStream(bytes), 1);
+        check(read.toString().equals(ops.toString()), "round trip of " + ops + " gave " + read);
+        return bytes;
+    }
+
+    static void checkMalformedInput() throws Exception {
+        CollabServer server = new CollabServer(0, "abc");
+        server.start();
+        // a varint that overflows into the sign bit, used as a revision
+        sendRaw(server, new byte[] {CollabServer.MSG_BATCH,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f, TextOp.TAG_END});
+        // a delete run far longer than the text has ever been
+        sendRaw(server, new byte[] {CollabServer.MSG_BATCH, 0, TextOp.TAG_DELETE, 0,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, TextOp.TAG_END});
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MILLIS;
+        while (!connectionsClosed(server) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        check(connectionsClosed(server), "server kept a connection that sent malformed input");
+        check(server.getText().equals("abc"), "malformed input changed the text");
+        server.close();
+    }
+
+    static boolean connectionsClosed(CollabServer server) {
+        synchronized (server) {
+            return server.connections.isEmpty();
+        }
+    }
+
+    // sends bytes and waits for the server to hang up
+    static void sendRaw(CollabServer server, byte[] message) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        OutputStream out = socket.getOutputStream();
+        out.write(message);
+        out.flush();
+        InputStream in = socket.getInputStream();
+        while (in.read() != -1) {
+            // skip the snapshot
+        }
+        socket.close();
+    }
+
+    static void checkConvergence() throws Exception {
+        Random random = new Random(26);
+        for (int trial = 0; trial < TRIALS; trial++) {
+            CollabServer server = new CollabServer(0, "shared text\n");
+            server.start();
+            List<CollabClient> clients = new ArrayList<>();
+            List<StringBuilder> texts = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                StringBuilder text = new StringBuilder();
+                clients.add(newClient(server, text));
+                texts.add(text);
+            }
+
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int i = 0; i < CLIENTS; i++) {
+                    editRandomly(random, clients.get(i), texts.get(i));
+                    clients.get(i).pump();
+                }
+                if (random.nextInt(10) == 0) {
+                    Thread.sleep(1);
+                }
+            }
+
+            long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MILLIS;
+            while (!converged(server, clients, texts)) {
+                check(System.currentTimeMillis() < deadline, "trial " + trial + " did not converge");
+                Thread.sleep(2);
+            }
+            for (CollabClient client : clients) {
+                check(!client.isClosed(), "trial " + trial + " dropped a client");
+                client.close();
+            }
+            server.close();
+        }
+    }
+
+    static void checkHistoryTrimming() throws Exception {
+        CollabServer server = new CollabServer(0, "");
+        server.start();
+        final StringBuilder typed = new StringBuilder();
+        final StringBuilder idle = new StringBuilder();
+        CollabClient typist = newClient(server, typed);
+        CollabClient reader = newClient(server, idle);
+
+        // one char per revision: wait for each ack before typing the next
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MILLIS * 3;
+        for (int i = 0; i < TYPED_REVISIONS; i++) {
+            TextOp op = TextOp.insert(typed.length(), (char) ('a' + i % 26), typist.getSite());
+            op.applyTo(typed);
+            typist.submit(op);
+            typist.pump();
+            while (!typist.isSynchronized()) {
+                check(System.currentTimeMillis() < deadline, "typing was never acked");
+                Thread.sleep(0, 100000);
+                typist.pump();
+                reader.pump();
+            }
+            reader.pump();
+            // history holds what the idle client hasn't reported yet, plus the few
+            // batches made while its latest report is on the way to the server
+            check(server.getHistorySize() <= CollabClient.SEEN_INTERVAL + REPORT_SLACK,
+                    "history grew to " + server.getHistorySize() + " batches");
+        }
+        check(server.getRevision() >= TYPED_REVISIONS, "typing made too few revisions");
+
+        // once everything is delivered, only the idle client's unreported tail is left
+        while (!idle.toString().equals(server.getText())
+                || server.getHistorySize() > CollabClient.SEEN_INTERVAL) {
+            check(System.currentTimeMillis() < deadline,
+                    "history stayed at " + server.getHistorySize() + " batches");
+            Thread.sleep(2);
+            reader.pump();
+            typist.pump();
+        }
+        typist.close();
+        reader.close();
+        server.close();
+    }
+
+    static CollabClient newClient(CollabServer server, final StringBuilder text) throws IOException {
+        CollabClient client = new CollabClient(new CollabClient.Listener() {
+            @Override
+            public void apply(List<TextOp> ops) {
+                for (TextOp op : ops) {
+                    op.applyTo(text);
+                }
+            }
+        });
+        text.append(client.connect(server.getPort()));
+        return client;
+    }
+
+    static void editRandomly(Random random, CollabClient client, StringBuilder text) {
+        int edits = random.nextInt(4);
+        for (int i = 0; i < edits; i++) {
+            TextOp op;
+            if (text.length() > 0 && random.nextInt(3) == 0) {
+                op = TextOp.delete(random.nextInt(text.length()), client.getSite());
+            } else {
+                char letter = (char) ('a' + random.nextInt(26));
+                op = TextOp.insert(random.nextInt(text.length() + 1), letter, client.getSite());
+            }
+            op.applyTo(text);
+            client.submit(op);
+        }
+    }
+
+    static boolean converged(CollabServer server, List<CollabClient> clients, List<StringBuilder> texts) {
+        boolean done = true;
+        for (CollabClient client : clients) {
+            client.pump();
+            done &= client.isSynchronized();
+        }
+        String expected = server.getText();
+        for (StringBuilder text : texts) {
+            done &= text.toString().equals(expected);
+        }
+        return done;
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package editor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Client side of a CollabServer session. Local edits are collected with submit()
+ * and go out as one batch per pump(); only one batch is ever waiting for the
+ * server's ack; whatever is typed meanwhile is held back and sent as the next batch.
+ *
+ * submit() and pump() must be called from the same thread (the FX thread in the
+ * editor). Network I/O happens on two daemon threads.
+ */
+public class CollabClient {
+
+    interface Listener {
+        // ops from other sites, already transformed to apply to the local text in order
+        void apply(List<TextOp> ops);
+    }
+
+    // remote messages held for pump() before the reader stops pulling from the socket
+    static final int INBOX_CAPACITY = 256;
+    // how far an idle client lets its revision run ahead before telling the server,
+    // so the server can drop history it no longer needs
+    static final int SEEN_INTERVAL = 64;
+
+    // an incoming message: ops == null means an ack of our outstanding batch
+    static class Message {
+        List<TextOp> ops;
+
+        Message(List<TextOp> ops) {
+            this.ops = ops;
+        }
+    }
+
+    Socket socket;
+    Listener listener;
+    int site;
+    int revision;
+    int reportedRevision;
+
+    List<TextOp> outstanding;
+    List<TextOp> buffer = new ArrayList<>();
+
+    BlockingQueue<Message> inbox = new ArrayBlockingQueue<>(INBOX_CAPACITY);
+    BlockingQueue<byte[]> outbox = new LinkedBlockingQueue<>();
+    volatile boolean closed;
+
+    CollabClient(Listener listener) {
+        this.listener = listener;
+    }
+
+    int getSite() {
+        return site;
+    }
+
+    /**
+     * Connects to a server on this machine and returns the current text, which the
+     * caller must load before submitting any ops.
+     */
+    String connect(int port) throws IOException {
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        final InputStream in = new BufferedInputStream(socket.getInputStream());
+        if (in.read() != CollabServer.MSG_SNAPSHOT) {
+            socket.close();
+            throw new IOException("Expected snapshot from server");
+        }
+        revision = TextOp.readVarInt(in);
+        reportedRevision = revision;
+        site = TextOp.readVarInt(in);
+        int length = TextOp.readVarInt(in);
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) TextOp.readVarInt(in));
+        }
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop(in);
+            }
+        }, "collab-client-read");
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "collab-client-write");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+        return text.toString();
+    }
+
+    void close() {
+        closed = true;
+        outbox.offer(new byte[0]);
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException ioe) {
+            System.out.println(ioe);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    // true once every local edit has been acked by the server
+    boolean isSynchronized() {
+        return outstanding == null && buffer.isEmpty();
+    }
+
+    void submitInsert(int position, char character) {
+        submit(TextOp.insert(position, character, site));
+    }
+
+    void submitDelete(int position) {
+        submit(TextOp.delete(position, site));
+    }
+
+    void submit(TextOp op) {
+        if (closed) {
+            return;
+        }
+        buffer.add(op);
+    }
+
+    /**
+     * Applies everything the server has sent since the last call, in a single
+     * listener callback, then sends the buffered local edits if nothing is in flight.
+     */
+    void pump() {
+        List<TextOp> remote = new ArrayList<>();
+        List<Message> messages = new ArrayList<>();
+        inbox.drainTo(messages);
+        for (Message m : messages) {
+            revision++;
+            if (m.ops == null) {
+                outstanding = null;
+                continue;
+            }
+            List<TextOp> ops = m.ops;
+            if (outstanding != null) {
+                List<List<TextOp>> pair = TextOp.transform(outstanding, ops);
+                outstanding = pair.get(0);
+                ops = pair.get(1);
+            }
+            if (!buffer.isEmpty()) {
+                List<List<TextOp>> pair = TextOp.transform(buffer, ops);
+                buffer = pair.get(0);
+                ops = pair.get(1);
+            }
+            remote.addAll(ops);
+        }
+        if (!remote.isEmpty()) {
+            listener.apply(remote);
+        }
+        flush();
+    }
+
+    private void flush() {
+        if (closed || outstanding != null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            if (!buffer.isEmpty()) {
+                outstanding = buffer;
+                buffer = new ArrayList<>();
+                message.write(CollabServer.MSG_BATCH);
+                TextOp.writeVarInt(message, revision);
+                TextOp.writeOps(message, outstanding);
+            } else if (revision - reportedRevision >= SEEN_INTERVAL) {
+                message.write(CollabServer.MSG_SEEN);
+                TextOp.writeVarInt(message, revision);
+            } else {
+                return;
+            }
+            reportedRevision = revision;
+            outbox.offer(message.toByteArray());
+        } catch (IOException ioe) {
+            // ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    private void readLoop(InputStream in) {
+        try {
+            while (!closed) {
+                int type = in.read();
+                if (type == -1) {
+                    throw new EOFException();
+                } else if (type == CollabServer.MSG_ACK) {
+                    inbox.put(new Message(null));
+                } else if (type == CollabServer.MSG_OPS) {
+                    int from = TextOp.readVarInt(in);
+                    inbox.put(new Message(TextOp.readOps(in, from)));
+                } else {
+                    throw new IOException("Unexpected message " + type);
+                }
+            }
+        } catch (IOException ioe) {
+            if (!closed) {
+                System.out.println(ioe);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        close();
+    }
+
+    private void writeLoop() {
+        try {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (!closed) {
+                byte[] message = outbox.take();
+                out.write(message);
+                out.flush();
+            }
+        } catch (IOException ioe) {
+            if (!closed) {
+                System.out.println(ioe);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        close();
+    }
+}
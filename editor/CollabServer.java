@@ -0,0 +1,308 @@
+package editor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Central editing server. Holds the authoritative text and the recent batches
+ * applied to it; a client batch based on an older revision is transformed against
+ * the batches it hasn't seen, applied, acked to its sender and broadcast to everyone
+ * else. Batches every connected client has seen are dropped. Only listens on the
+ * loopback interface.
+ */
+public class CollabServer {
+
+    static final int MSG_SNAPSHOT = 1;
+    static final int MSG_BATCH = 2;
+    static final int MSG_OPS = 3;
+    static final int MSG_ACK = 4;
+    static final int MSG_SEEN = 5;
+
+    // messages queued for one client before it is considered too slow and dropped
+    static final int OUTBOX_CAPACITY = 1024;
+
+    ServerSocket serverSocket;
+    StringBuilder text;
+    // history.get(i) is the batch that produced revision historyStart + i + 1
+    List<List<TextOp>> history = new ArrayList<>();
+    int historyStart;
+    List<Connection> connections = new ArrayList<>();
+    int nextSite = 1;
+    // no client can be working on a text longer than this, which bounds delete runs
+    int maxTextLength;
+
+    CollabServer(int port, String initialText) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        text = new StringBuilder(initialText);
+        maxTextLength = text.length();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    void start() {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        join(serverSocket.accept());
+                    } catch (IOException ioe) {
+                        if (!serverSocket.isClosed()) {
+                            System.out.println(ioe);
+                        }
+                    }
+                }
+            }
+        }, "collab-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ioe) {
+            System.out.println(ioe);
+        }
+        List<Connection> open;
+        synchronized (this) {
+            open = new ArrayList<>(connections);
+        }
+        for (Connection c : open) {
+            c.close();
+        }
+    }
+
+    synchronized String getText() {
+        return text.toString();
+    }
+
+    synchronized int getMaxTextLength() {
+        return maxTextLength;
+    }
+
+    synchronized int getRevision() {
+        return historyStart + history.size();
+    }
+
+    synchronized int getHistorySize() {
+        return history.size();
+    }
+
+    private void join(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        Connection c = new Connection(socket);
+        synchronized (this) {
+            c.site = nextSite++;
+            c.revision = getRevision();
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            message.write(MSG_SNAPSHOT);
+            TextOp.writeVarInt(message, c.revision);
+            TextOp.writeVarInt(message, c.site);
+            TextOp.writeVarInt(message, text.length());
+            for (int i = 0; i < text.length(); i++) {
+                TextOp.writeVarInt(message, text.charAt(i));
+            }
+            c.send(message.toByteArray());
+            connections.add(c);
+        }
+        c.start();
+    }
+
+    private synchronized void receive(Connection from, int revision, List<TextOp> ops) {
+        if (from.closed.get()) {
+            return;
+        }
+        if (revision < from.revision || revision > getRevision()) {
+            from.close();
+            return;
+        }
+        from.revision = revision;
+        for (int i = revision - historyStart; i < history.size(); i++) {
+            ops = TextOp.transform(ops, history.get(i)).get(0);
+        }
+        // check the whole batch first so a bad one never leaves the text half edited
+        int length = text.length();
+        for (TextOp op : ops) {
+            int limit = op.type == TextOp.Type.INSERT ? length : length - 1;
+            if (op.position < 0 || op.position > limit) {
+                from.close();
+                return;
+            }
+            length += op.type == TextOp.Type.INSERT ? 1 : -1;
+        }
+        for (TextOp op : ops) {
+            op.applyTo(text);
+            maxTextLength = Math.max(maxTextLength, text.length());
+        }
+        history.add(ops);
+
+        byte[] broadcast;
+        try {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            message.write(MSG_OPS);
+            TextOp.writeVarInt(message, from.site);
+            TextOp.writeOps(message, ops);
+            broadcast = message.toByteArray();
+        } catch (IOException ioe) {
+            // ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(ioe);
+        }
+        for (Connection c : new ArrayList<>(connections)) {
+            if (c == from) {
+                c.send(new byte[] {MSG_ACK});
+            } else {
+                c.send(broadcast);
+            }
+        }
+        trimHistory();
+    }
+
+    private synchronized void seen(Connection from, int revision) {
+        if (from.closed.get()) {
+            return;
+        }
+        if (revision < from.revision || revision > getRevision()) {
+            from.close();
+            return;
+        }
+        from.revision = revision;
+        trimHistory();
+    }
+
+    private synchronized void leave(Connection c) {
+        connections.remove(c);
+        trimHistory();
+    }
+
+    // drops the batches that every connected client already has
+    private void trimHistory() {
+        int oldest = getRevision();
+        for (Connection c : connections) {
+            oldest = Math.min(oldest, c.revision);
+        }
+        if (oldest > historyStart) {
+            history.subList(0, oldest - historyStart).clear();
+            historyStart = oldest;
+        }
+    }
+
+    class Connection {
+        Socket socket;
+        int site;
+        // the newest revision this client has said it has, guarded by the server
+        int revision;
+        BlockingQueue<byte[]> outbox = new ArrayBlockingQueue<>(OUTBOX_CAPACITY);
+        AtomicBoolean closed = new AtomicBoolean();
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        void start() {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readLoop();
+                }
+            }, "collab-read-" + site);
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }, "collab-write-" + site);
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        // never blocks the caller: a client that can't keep up is disconnected instead
+        // of stalling every other client behind it
+        void send(byte[] message) {
+            if (!outbox.offer(message)) {
+                close();
+            }
+        }
+
+        void readLoop() {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                while (!closed.get()) {
+                    int type = in.read();
+                    if (type == MSG_BATCH) {
+                        int revision = TextOp.readVarInt(in);
+                        List<TextOp> ops = TextOp.readOps(in, site, getMaxTextLength());
+                        receive(this, revision, ops);
+                    } else if (type == MSG_SEEN) {
+                        seen(this, TextOp.readVarInt(in));
+                    } else {
+                        break;
+                    }
+                }
+            } catch (IOException ioe) {
+                if (!closed.get()) {
+                    System.out.println(ioe);
+                }
+            } catch (RuntimeException re) {
+                // a peer sending nonsense must not leave a dead connection behind
+                System.out.println(re);
+            }
+            close();
+        }
+
+        // everything queued since the last write goes out in a single flush
+        void writeLoop() {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                List<byte[]> pending = new ArrayList<>();
+                while (!closed.get()) {
+                    pending.add(outbox.take());
+                    outbox.drainTo(pending);
+                    for (byte[] message : pending) {
+                        out.write(message);
+                    }
+                    pending.clear();
+                    out.flush();
+                }
+            } catch (IOException ioe) {
+                if (!closed.get()) {
+                    System.out.println(ioe);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            close();
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            outbox.clear();
+            // wake the writer if it is waiting on an empty outbox
+            outbox.offer(new byte[0]);
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                System.out.println(ioe);
+            }
+            leave(this);
+        }
+    }
+}
@@ -24,6 +24,7 @@ import javafx.util.Duration;
 import java.util.Stack;
 import java.io.File;
 import java.io.*;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Editor extends Application implements EventHandler<KeyEvent> {
@@ -33,6 +34,7 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
         Node previous;
         Node next;
         boolean isNewLine;
+        TextIndex.Entry<Node> entry;
 
         Node(Text eachInput, Node p, Node n) {
             input = eachInput;
@@ -44,11 +46,22 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
     static final int WINDOW_WIDTH = 500;
     static final int WINDOW_HEIGHT = 500;
     static final int STARTING_FONT_SIZE = 50;
+    static final int STATUS_FONT_SIZE = 12;
+    // how often edits from other collaborators are drawn and local edits are sent
+    static final double COLLAB_FRAME_MILLIS = 16;
 
     Node sentinel;
     Node current;
 
     Rectangle cursor = new Rectangle(1, 1);
+    Rectangle statusBackground = new Rectangle();
+    Text status = new Text();
+    Rectangle outlineBackground = new Rectangle();
+    Text outline = new Text();
+    boolean outlineShown;
+    // heading shown on the first row of the outline panel
+    int outlineFirst;
+    TextIndex<Node> index;
 
     int fontSize = STARTING_FONT_SIZE;
     double textHeight;
@@ -58,11 +71,16 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
 
     double cursorSize;
 
+    Stage stage;
     Group root;
     Group textRoot = new Group();
     Scene scene;
     ScrollBar scrollBar;
     OperationController opController;
+    CollabServer collabServer;
+    CollabClient collab;
+    // set once the link to the server is gone and local edits stop being shared
+    boolean collabLost;
 
     void Init() {
         // Always set the text origin to be VPos.TOP! Setting the origin to be VPos.TOP means
@@ -79,6 +97,16 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
         textHeight = Math.round(sentinel.input.getLayoutBounds().getHeight());
         scrollBar = new ScrollBar();
         opController = new OperationController();
+        index = new TextIndex<>();
+        status.setTextOrigin(VPos.TOP);
+        status.setFont(Font.font(fontName, STATUS_FONT_SIZE));
+        statusBackground.setFill(Color.WHITE);
+        outline.setTextOrigin(VPos.TOP);
+        outline.setFont(Font.font(fontName, STATUS_FONT_SIZE));
+        outline.setVisible(false);
+        outlineBackground.setFill(Color.WHITE);
+        outlineBackground.setStroke(Color.LIGHTGRAY);
+        outlineBackground.setVisible(false);
 
         List<String> arguments = this.getParameters().getRaw();
         if (arguments.size() < 1) {
@@ -94,7 +122,7 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
             int intRead;
             while ((intRead = bufferedReader.read()) != -1) {
                 String letter = Character.toString((char) intRead);
-                InsertOp insert = new InsertOp(current, letter);
+                InsertOp insert = new InsertOp(letter);
                 insert.execute();
             }
             current = sentinel;
@@ -102,8 +130,27 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
             System.out.println(ioe);
         }
 
+        // optional: "--serve <port>" shares this file, "--join <port>" edits someone else's
+        if (arguments.size() > 1) {
+            int port = 0;
+            if (arguments.size() == 3
+                    && (arguments.get(1).equals("--serve") || arguments.get(1).equals("--join"))) {
+                try {
+                    port = Integer.parseInt(arguments.get(2));
+                } catch (NumberFormatException nfe) {
+                    port = 0;
+                }
+            }
+            if (port < 1 || port > 65535) {
+                System.out.println("Usage: java editor.Editor <file> [--serve <port> | --join <port>]");
+                System.exit(0);
+            }
+            startCollaboration(arguments.get(1), port);
+        }
+
         scrollBar.setOrientation(Orientation.VERTICAL);
         repositionScrollBar();
+        repositionStatus();
 
 
         // Set values for scroll bar to scroll from top to bottom of text
@@ -123,6 +170,7 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
             public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
                 layoutAllTexts();
                 repositionScrollBar();
+                repositionStatus();
             }
         });
 
@@ -131,6 +179,7 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
             public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
                 layoutAllTexts();
                 repositionScrollBar();
+                repositionStatus();
             }
         });
 
@@ -139,6 +188,10 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
         // All new Nodes need to be added to the root in order to be displayed.
         root.getChildren().add(textRoot);
         root.getChildren().add(scrollBar);
+        root.getChildren().add(statusBackground);
+        root.getChildren().add(status);
+        root.getChildren().add(outlineBackground);
+        root.getChildren().add(outline);
         textRoot.getChildren().add(cursor);
         scene.setOnMouseClicked(new MouseClickEventHandler());
         makeCursorBlink();
@@ -156,8 +209,12 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
             if (characterTyped.length() > 0 && characterTyped.charAt(0) != 8 && !keyEvent.isShortcutDown()) {
                 // Ignore control keys, which have zero length, as well as the backspace
                 // key, which is represented as a character of value = 8 on Windows.
-                InsertOp insert = new InsertOp(current, characterTyped);
-                opController.execute(insert);
+                // Input methods can commit several chars at once; each gets its own
+                // Node so every char is laid out, saved and shared with collaborators.
+                for (int i = 0; i < characterTyped.length(); i++) {
+                    InsertOp insert = new InsertOp(characterTyped.substring(i, i + 1));
+                    opController.execute(insert);
+                }
             }
 
             keyEvent.consume();
@@ -175,7 +232,7 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
             } else if (code == KeyCode.RIGHT) {
                 moveCursor(Direction.RIGHT);
             } else if (code == KeyCode.BACK_SPACE) {
-                DeleteOp delete = new DeleteOp(current);
+                DeleteOp delete = new DeleteOp();
                 opController.execute(delete);
             } else if (keyEvent.isShortcutDown()) {
                 if (code == KeyCode.PLUS || code == KeyCode.EQUALS) {
@@ -188,6 +245,8 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
                     }
                 } else if (code == KeyCode.P) {
                     printCursorPosition();
+                } else if (code == KeyCode.O) {
+                    toggleOutline();
                 } else if (code == KeyCode.S) {
                     save();
                 } else if (code == KeyCode.Z) {
@@ -203,6 +262,9 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
         void execute();
         void undo();
         void redo();
+        // rewrites this op's next undo or redo for a remote edit that was just applied,
+        // and returns the remote edit as it would apply after that undo or redo
+        TextOp transform(TextOp remote);
     }
 
     class FontResizeOp implements Operation {
@@ -229,6 +291,11 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
             changeFontSize(newFontSize);
         }
 
+        @Override
+        public TextOp transform(TextOp remote) {
+            return remote;
+        }
+
         private void changeFontSize(int s) {
             Node p = sentinel;
             while (true) {
@@ -248,72 +315,68 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
         }
     }
 
-    class InsertOp implements Operation {
-        Node currentNode;
-        Node previousNode;
-        String letter;
+    // Undo and redo are kept as positions rather than Nodes, so they still make sense
+    // after collaborators have edited the text around them.
+    abstract class TextEditOp implements Operation {
+        // what the next undo or redo will do
+        TextOp pending;
 
-        InsertOp(Node currentNode, String letter) {
-            this.previousNode = currentNode;
-            this.letter = letter;
+        @Override
+        public void undo() {
+            apply(pending);
+            pending = pending.inverse();
         }
 
         @Override
-        public void execute() {
-            Text text;
-            if (letter.charAt(0) != '\r' && letter.charAt(0) != '\n') {
-                text = new Text(letter);
-            } else {
-                text = new Text("");
-            }
-
-            Node newNode = new Node(text, null, null);
-            if (letter.charAt(0) != '\r' && letter.charAt(0) != '\n') {
-                newNode.isNewLine = false;
-            } else {
-                newNode.isNewLine = true;
-            }
-            insert(newNode);
-            currentNode = newNode;
+        public void redo() {
+            apply(pending);
+            pending = pending.inverse();
         }
 
         @Override
-        public void undo() {
-            current = this.currentNode;
-            delete();
+        public TextOp transform(TextOp remote) {
+            TextOp mine = pending;
+            pending = TextOp.transform(mine, remote);
+            return TextOp.transform(remote, mine);
         }
 
-        @Override
-        public void redo() {
-            current = this.previousNode;
-            insert(this.currentNode);
+        void apply(TextOp op) {
+            if (op.type == TextOp.Type.INSERT) {
+                current = nodeAt(op.position);
+                insert(makeNode(Character.toString(op.character)));
+            } else if (op.type == TextOp.Type.DELETE) {
+                current = nodeAt(op.position + 1);
+                delete();
+            }
         }
     }
 
-    class DeleteOp implements Operation {
-        Node currentNode;
-        Node previousNode;
+    class InsertOp extends TextEditOp {
+        String letter;
 
-        DeleteOp(Node current) {
-            this.currentNode = current;
+        InsertOp(String letter) {
+            this.letter = letter;
         }
 
         @Override
         public void execute() {
-            previousNode = currentNode.previous;
-            delete();
-        }
-
-        @Override
-        public void undo() {
-            current = this.previousNode;
-            insert(this.currentNode);
+            int position = indexOf(current);
+            insert(makeNode(letter));
+            pending = TextOp.delete(position, charOf(current), 0);
         }
+    }
 
+    class DeleteOp extends TextEditOp {
         @Override
-        public void redo() {
-            current = currentNode;
+        public void execute() {
+            if (current == sentinel) {
+                pending = TextOp.noop(0);
+                return;
+            }
+            int position = indexOf(current) - 1;
+            char letter = charOf(current);
             delete();
+            pending = TextOp.insert(position, letter, 0);
         }
     }
 
@@ -345,6 +408,22 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
             top.redo();
             undoStack.push(top);
         }
+
+        // Moves both stacks past edits that arrived from collaborators. The top of
+        // each stack applies to the current text, the entry under it to the text
+        // after that top entry has been undone or redone, and so on down.
+        void transform(List<TextOp> remote) {
+            for (TextOp op : remote) {
+                transformStack(undoStack, op);
+                transformStack(redoStack, op);
+            }
+        }
+
+        private void transformStack(Stack<Operation> stack, TextOp remote) {
+            for (int i = stack.size() - 1; i >= 0; i--) {
+                remote = stack.get(i).transform(remote);
+            }
+        }
     }
 
 
@@ -465,6 +544,15 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
         public void handle(MouseEvent mouseEvent) {
             double mousePressedX = mouseEvent.getX();
             double mousePressedY = mouseEvent.getY();
+            // the status line and the outline cover the text under them
+            if (mousePressedY >= viewportHeight()) {
+                toggleOutline();
+                return;
+            }
+            if (outlineShown && mousePressedY >= outlineBackground.getY()) {
+                jumpToOutlineRow(mousePressedY);
+                return;
+            }
             Node p = sentinel.next;
             double yPosOnText = mousePressedY + scrollBar.getValue();
             double desiredLineY;
@@ -555,18 +643,150 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
         scrollBar.setLayoutX(positionScrollBar);
     }
 
+    double statusHeight() {
+        return Math.round(status.getLayoutBounds().getHeight());
+    }
+
+    // the part of the window the text shows in, above the status line
+    double viewportHeight() {
+        return scene.getHeight() - statusHeight();
+    }
+
+    void repositionStatus() {
+        statusBackground.setY(viewportHeight());
+        statusBackground.setWidth(scene.getWidth() - scrollBar.getLayoutBounds().getWidth());
+        statusBackground.setHeight(statusHeight());
+        status.setY(viewportHeight());
+    }
+
+    // all counts come from the root of the index, so this is cheap to do on every edit
+    void updateStatus() {
+        String text = collabLost ? "DISCONNECTED  |  " : "";
+        text += "Words: " + index.wordCount() + "  Lines: " + index.lineCount()
+                + "  Chars: " + index.size();
+        int section = currentSection();
+        if (section >= 0) {
+            text += "  |  " + (section + 1) + "/" + index.headingCount() + " "
+                    + headingTitle(index.heading(section));
+        }
+        status.setText(text);
+        if (outlineShown) {
+            updateOutline(section);
+        }
+    }
+
+    // the last heading at or before the cursor, or -1 if the cursor is above every heading
+    int currentSection() {
+        int cursorIndex = indexOf(current);
+        int low = 0;
+        int high = index.headingCount() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) / 2;
+            if (index.indexOf(index.heading(mid)) <= cursorIndex) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    String headingTitle(TextIndex.Entry<Node> heading) {
+        StringBuilder title = new StringBuilder();
+        Node p = heading.value;
+        while (p != sentinel && !p.isNewLine && title.length() < 40) {
+            title.append(p.input.getText());
+            p = p.next;
+        }
+        return title.toString();
+    }
+
+    // clicking the status line or Ctrl+O opens a list of headings just above it
+    void toggleOutline() {
+        outlineShown = !outlineShown;
+        outline.setVisible(outlineShown);
+        outlineBackground.setVisible(outlineShown);
+        updateStatus();
+    }
+
+    // lists "line: title" for as many headings as fit, keeping the current one in view
+    void updateOutline(int section) {
+        int count = index.headingCount();
+        int rows = Math.max(1, (int) (viewportHeight() / statusHeight()) - 1);
+        rows = Math.min(rows, Math.max(count, 1));
+        outlineFirst = Math.max(0, Math.min(section - rows / 2, count - rows));
+
+        StringBuilder text = new StringBuilder();
+        if (count == 0) {
+            text.append("No headings: start a line with # to add one");
+        }
+        for (int i = outlineFirst; i < outlineFirst + rows && i < count; i++) {
+            TextIndex.Entry<Node> heading = index.heading(i);
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(i == section ? "> " : "  ");
+            text.append(index.lineOf(heading) + 1).append(": ").append(headingTitle(heading));
+        }
+        outline.setText(text.toString());
+
+        double height = Math.round(outline.getLayoutBounds().getHeight());
+        outlineBackground.setY(viewportHeight() - height);
+        outlineBackground.setWidth(scene.getWidth() - scrollBar.getLayoutBounds().getWidth());
+        outlineBackground.setHeight(height);
+        outline.setY(viewportHeight() - height);
+    }
+
+    // moves the cursor to the start of the heading on the clicked row
+    void jumpToOutlineRow(double y) {
+        int count = index.headingCount();
+        int shown = Math.min(count - outlineFirst, outline.getText().split("\n").length);
+        if (count == 0 || shown <= 0) {
+            return;
+        }
+        double rowHeight = outlineBackground.getHeight() / shown;
+        int row = (int) ((y - outlineBackground.getY()) / rowHeight);
+        int i = outlineFirst + Math.min(row, shown - 1);
+        current = index.heading(i).value.previous;
+        layoutAllTexts();
+        snapToCursor();
+    }
+
     void setScrollBar(double value) {
         scrollBar.setMin(0);
-        scrollBar.setMax(textRoot.getLayoutBounds().getHeight() - scene.getHeight());
+        scrollBar.setMax(textRoot.getLayoutBounds().getHeight() - viewportHeight());
         scrollBar.setValue(value);
     }
 
 
+    Node makeNode(String letter) {
+        Text text;
+        if (letter.charAt(0) != '\r' && letter.charAt(0) != '\n') {
+            text = new Text(letter);
+        } else {
+            text = new Text("");
+        }
+
+        Node newNode = new Node(text, null, null);
+        if (letter.charAt(0) != '\r' && letter.charAt(0) != '\n') {
+            newNode.isNewLine = false;
+        } else {
+            newNode.isNewLine = true;
+        }
+        return newNode;
+    }
+
     void insert(Node newNode) {
+        if (collab != null) {
+            collab.submitInsert(indexOf(current), charOf(newNode));
+        }
         newNode.previous = current;
         newNode.next = current.next;
         current.next = newNode;
         newNode.next.previous = newNode;
+        newNode.entry = index.insertAfter(current.entry, charOf(newNode), newNode);
         current = newNode;
         newNode.input.setTextOrigin(VPos.TOP);
         newNode.input.setFont(Font.font(fontName, fontSize));
@@ -579,8 +799,8 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
     // when the cursor moves off the screen vertically, the scrollbar will snap to
     // the cursor and display it on the screen
     void snapToCursor() {
-        if (cursor.getY() + cursor.getHeight() > scene.getHeight() + scrollBar.getValue()) {
-            setScrollBar(cursor.getY() + cursor.getHeight() - scene.getHeight());
+        if (cursor.getY() + cursor.getHeight() > viewportHeight() + scrollBar.getValue()) {
+            setScrollBar(cursor.getY() + cursor.getHeight() - viewportHeight());
         }
 
         if (cursor.getY() < scrollBar.getValue()) {
@@ -594,13 +814,140 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
         }
         Node beforeNode = current.previous;
         Node removeThisNode = current;
+        if (collab != null) {
+            collab.submitDelete(indexOf(removeThisNode) - 1);
+        }
         textRoot.getChildren().remove(removeThisNode.input);
+        index.remove(removeThisNode.entry);
         removeThisNode.next.previous = beforeNode;
         beforeNode.next = removeThisNode.next;
         current = beforeNode;
         layoutAllTexts();
     }
 
+    // position of the cursor after p, where the sentinel is 0 and the first char is 1
+    int indexOf(Node p) {
+        if (p == sentinel) {
+            return 0;
+        }
+        return index.indexOf(p.entry) + 1;
+    }
+
+    Node nodeAt(int i) {
+        if (i == 0) {
+            return sentinel;
+        }
+        return index.get(i - 1).value;
+    }
+
+    char charOf(Node p) {
+        if (p.isNewLine) {
+            return '\n';
+        }
+        return p.input.getText().charAt(0);
+    }
+
+    String documentText() {
+        StringBuilder text = new StringBuilder();
+        Node p = sentinel.next;
+        while (p != sentinel) {
+            text.append(charOf(p));
+            p = p.next;
+        }
+        return text.toString();
+    }
+
+    void startCollaboration(String mode, int port) {
+        try {
+            if (mode.equals("--serve")) {
+                collabServer = new CollabServer(port, documentText());
+                collabServer.start();
+            }
+            CollabClient client = new CollabClient(new RemoteEditListener());
+            String text = client.connect(port);
+            // the server's copy wins: reload it without going through insert()
+            Node p = sentinel.next;
+            while (p != sentinel) {
+                textRoot.getChildren().remove(p.input);
+                p = p.next;
+            }
+            sentinel.next = sentinel;
+            sentinel.previous = sentinel;
+            current = sentinel;
+            index = new TextIndex<>();
+            List<TextOp> load = new ArrayList<>();
+            for (int i = 0; i < text.length(); i++) {
+                load.add(TextOp.insert(i, text.charAt(i), 0));
+            }
+            applyRemote(load);
+            collab = client;
+        } catch (IOException ioe) {
+            System.out.println(ioe);
+            collabLost = true;
+        }
+
+        final Timeline timeline = new Timeline();
+        timeline.setCycleCount(Timeline.INDEFINITE);
+        KeyFrame keyFrame = new KeyFrame(Duration.millis(COLLAB_FRAME_MILLIS), new CollabFrameEventHandler());
+        timeline.getKeyFrames().add(keyFrame);
+        timeline.play();
+    }
+
+    // applies a whole frame's worth of remote edits and lays out once
+    void applyRemote(List<TextOp> ops) {
+        for (TextOp op : ops) {
+            Node before = nodeAt(op.position);
+            if (op.type == TextOp.Type.INSERT) {
+                Node newNode = makeNode(Character.toString(op.character));
+                newNode.previous = before;
+                newNode.next = before.next;
+                before.next = newNode;
+                newNode.next.previous = newNode;
+                newNode.entry = index.insertAfter(before.entry, op.character, newNode);
+                newNode.input.setTextOrigin(VPos.TOP);
+                newNode.input.setFont(Font.font(fontName, fontSize));
+                textRoot.getChildren().add(newNode.input);
+            } else if (op.type == TextOp.Type.DELETE) {
+                Node removeThisNode = before.next;
+                if (removeThisNode == current) {
+                    current = before;
+                }
+                textRoot.getChildren().remove(removeThisNode.input);
+                index.remove(removeThisNode.entry);
+                removeThisNode.next.previous = before;
+                before.next = removeThisNode.next;
+            }
+        }
+        layoutAllTexts();
+    }
+
+    class RemoteEditListener implements CollabClient.Listener {
+        @Override
+        public void apply(List<TextOp> ops) {
+            opController.transform(ops);
+            applyRemote(ops);
+        }
+    }
+
+    class CollabFrameEventHandler implements EventHandler<ActionEvent> {
+        @Override
+        public void handle(ActionEvent event) {
+            if (collab == null) {
+                return;
+            }
+            if (collab.isClosed()) {
+                // the server dropped us or went away: say so instead of letting the
+                // user keep typing into a copy nobody else sees
+                collab = null;
+                collabLost = true;
+                stage.setTitle(title());
+                updateStatus();
+                return;
+            }
+            collab.pump();
+        }
+    }
+
     void layoutAllTexts() {
         // Re-position the text.
         double x = 0;
@@ -659,20 +1006,39 @@ public class Editor extends Application implements EventHandler<KeyEvent> {
             cursor.setY(0);
         }
         setScrollBar(scrollBar.getValue());
+        updateStatus();
+    }
+
+    String title() {
+        if (collabLost) {
+            return "My Editor (disconnected, edits are not shared)";
+        }
+        return "My Editor";
     }
 
     @Override
     public void start(Stage primaryStage) {
+        stage = primaryStage;
         root = new Group();
         scene = new Scene(root, WINDOW_WIDTH, WINDOW_HEIGHT, Color.WHITE);
         Init();
         scene.setOnKeyTyped(this);
         scene.setOnKeyPressed(this);
-        primaryStage.setTitle("My Editor");
+        primaryStage.setTitle(title());
         primaryStage.setScene(scene);
         primaryStage.show();
     }
 
+    @Override
+    public void stop() {
+        if (collab != null) {
+            collab.close();
+        }
+        if (collabServer != null) {
+            collabServer.close();
+        }
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
@@ -0,0 +1,264 @@
+package editor;
+
+import java.util.Random;
+
+/**
+ * Balanced tree kept alongside the editor's Node list, with one entry per character
+ * in the same order. Every entry holds totals for its subtree (chars, newlines,
+ * words, heading lines), so an edit only recomputes the entries on its path to the
+ * root and the document-wide numbers are read straight off the root.
+ *
+ * A heading is a line that starts with '#'. A word is a run of non-whitespace chars.
+ */
+public class TextIndex<T> {
+
+    static class Entry<T> {
+        final char character;
+        final T value;
+        final int priority;
+        Entry<T> left;
+        Entry<T> right;
+        Entry<T> parent;
+
+        // totals for this subtree
+        int size;
+        int newlines;
+        int words;
+        // '#' chars right after a '\n', both inside this subtree
+        int headings;
+        char first;
+        char last;
+
+        Entry(char character, T value, int priority) {
+            this.character = character;
+            this.value = value;
+            this.priority = priority;
+        }
+    }
+
+    Entry<T> root;
+    Random random = new Random();
+
+    int size() {
+        return root == null ? 0 : root.size;
+    }
+
+    int lineCount() {
+        return root == null ? 1 : root.newlines + 1;
+    }
+
+    int wordCount() {
+        return root == null ? 0 : root.words;
+    }
+
+    int headingCount() {
+        if (root == null) {
+            return 0;
+        }
+        // the first line has no '\n' in front of it
+        return root.headings + (root.first == '#' ? 1 : 0);
+    }
+
+    /**
+     * Adds a char right after prev, or at the start of the text if prev is null,
+     * and returns its entry.
+     */
+    Entry<T> insertAfter(Entry<T> prev, char character, T value) {
+        Entry<T> e = new Entry<>(character, value, random.nextInt());
+        if (root == null) {
+            root = e;
+        } else if (prev == null) {
+            Entry<T> p = root;
+            while (p.left != null) {
+                p = p.left;
+            }
+            p.left = e;
+            e.parent = p;
+        } else if (prev.right == null) {
+            prev.right = e;
+            e.parent = prev;
+        } else {
+            Entry<T> p = prev.right;
+            while (p.left != null) {
+                p = p.left;
+            }
+            p.left = e;
+            e.parent = p;
+        }
+        while (e.parent != null && e.parent.priority < e.priority) {
+            rotateUp(e);
+        }
+        updateToRoot(e);
+        return e;
+    }
+
+    void remove(Entry<T> e) {
+        // rotate it down until it is a leaf, then cut it off
+        while (e.left != null || e.right != null) {
+            if (e.right == null || (e.left != null && e.left.priority > e.right.priority)) {
+                rotateUp(e.left);
+            } else {
+                rotateUp(e.right);
+            }
+        }
+        Entry<T> p = e.parent;
+        if (p == null) {
+            root = null;
+        } else if (p.left == e) {
+            p.left = null;
+        } else {
+            p.right = null;
+        }
+        e.parent = null;
+        updateToRoot(p);
+    }
+
+    // number of chars in front of e
+    int indexOf(Entry<T> e) {
+        int index = e.left == null ? 0 : e.left.size;
+        for (Entry<T> p = e; p.parent != null; p = p.parent) {
+            if (p.parent.right == p) {
+                index += 1 + (p.parent.left == null ? 0 : p.parent.left.size);
+            }
+        }
+        return index;
+    }
+
+    // zero-based line that e is on
+    int lineOf(Entry<T> e) {
+        int line = e.left == null ? 0 : e.left.newlines;
+        for (Entry<T> p = e; p.parent != null; p = p.parent) {
+            if (p.parent.right == p) {
+                line += (p.parent.character == '\n' ? 1 : 0) + (p.parent.left == null ? 0 : p.parent.left.newlines);
+            }
+        }
+        return line;
+    }
+
+    Entry<T> get(int index) {
+        Entry<T> p = root;
+        while (p != null) {
+            int leftSize = p.left == null ? 0 : p.left.size;
+            if (index < leftSize) {
+                p = p.left;
+            } else if (index == leftSize) {
+                return p;
+            } else {
+                index -= leftSize + 1;
+                p = p.right;
+            }
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    /**
+     * Returns the '#' entry that starts the k-th heading line, counting from zero.
+     */
+    Entry<T> heading(int k) {
+        if (k < 0 || k >= headingCount()) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (root.first == '#') {
+            if (k == 0) {
+                return leftmost(root);
+            }
+            k--;
+        }
+        Entry<T> p = root;
+        while (true) {
+            int leftHeadings = p.left == null ? 0 : p.left.headings;
+            if (k < leftHeadings) {
+                p = p.left;
+                continue;
+            }
+            k -= leftHeadings;
+            if (p.left != null && p.left.last == '\n' && p.character == '#') {
+                if (k == 0) {
+                    return p;
+                }
+                k--;
+            }
+            if (p.right != null && p.character == '\n' && p.right.first == '#') {
+                if (k == 0) {
+                    return leftmost(p.right);
+                }
+                k--;
+            }
+            p = p.right;
+        }
+    }
+
+    private Entry<T> leftmost(Entry<T> p) {
+        while (p.left != null) {
+            p = p.left;
+        }
+        return p;
+    }
+
+    private void rotateUp(Entry<T> e) {
+        Entry<T> p = e.parent;
+        Entry<T> g = p.parent;
+        if (p.left == e) {
+            p.left = e.right;
+            if (e.right != null) {
+                e.right.parent = p;
+            }
+            e.right = p;
+        } else {
+            p.right = e.left;
+            if (e.left != null) {
+                e.left.parent = p;
+            }
+            e.left = p;
+        }
+        p.parent = e;
+        e.parent = g;
+        if (g == null) {
+            root = e;
+        } else if (g.left == p) {
+            g.left = e;
+        } else {
+            g.right = e;
+        }
+        update(p);
+        update(e);
+    }
+
+    private void updateToRoot(Entry<T> e) {
+        for (Entry<T> p = e; p != null; p = p.parent) {
+            update(p);
+        }
+    }
+
+    // recomputes e's totals from its children, joining left + e + right
+    private void update(Entry<T> e) {
+        char c = e.character;
+        e.size = 1;
+        e.newlines = c == '\n' ? 1 : 0;
+        e.words = isWordChar(c) ? 1 : 0;
+        e.headings = 0;
+        e.first = c;
+        e.last = c;
+
+        Entry<T> l = e.left;
+        if (l != null) {
+            e.size += l.size;
+            e.newlines += l.newlines;
+            e.words += l.words - (isWordChar(l.last) && isWordChar(c) ? 1 : 0);
+            e.headings += l.headings + (l.last == '\n' && c == '#' ? 1 : 0);
+            e.first = l.first;
+        }
+        Entry<T> r = e.right;
+        if (r != null) {
+            e.size += r.size;
+            e.newlines += r.newlines;
+            e.words += r.words - (isWordChar(c) && isWordChar(r.first) ? 1 : 0);
+            e.headings += r.headings + (c == '\n' && r.first == '#' ? 1 : 0);
+            e.last = r.last;
+        }
+    }
+
+    private static boolean isWordChar(char c) {
+        return !Character.isWhitespace(c);
+    }
+}
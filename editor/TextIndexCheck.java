@@ -0,0 +1,97 @@
+package editor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Self-check for TextIndex that needs no window: makes random inserts and removes
+ * and compares every total and lookup against a recount of a plain StringBuilder
+ * holding the same text.
+ *
+ * Run with: javac editor/TextIndexCheck.java && java editor.TextIndexCheck
+ */
+public class TextIndexCheck {
+
+    static final int TRIALS = 300;
+    static final int EDITS = 400;
+    // spaces, tabs and newlines next to '#' exercise the word and heading joins
+    static final String ALPHABET = "ab #\n\t";
+
+    public static void main(String[] args) {
+        Random random = new Random(27);
+        for (int trial = 0; trial < TRIALS; trial++) {
+            TextIndex<Integer> index = new TextIndex<>();
+            List<TextIndex.Entry<Integer>> entries = new ArrayList<>();
+            StringBuilder text = new StringBuilder();
+            for (int edit = 0; edit < EDITS; edit++) {
+                if (text.length() > 0 && random.nextInt(5) < 2) {
+                    int i = random.nextInt(text.length());
+                    index.remove(entries.remove(i));
+                    text.deleteCharAt(i);
+                } else {
+                    int i = random.nextInt(text.length() + 1);
+                    char c = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+                    TextIndex.Entry<Integer> prev = i == 0 ? null : entries.get(i - 1);
+                    entries.add(i, index.insertAfter(prev, c, edit));
+                    text.insert(i, c);
+                }
+                compare(index, entries, text.toString(), "trial " + trial + " edit " + edit);
+            }
+        }
+        System.out.println("All text index checks passed");
+    }
+
+    static void compare(TextIndex<Integer> index, List<TextIndex.Entry<Integer>> entries,
+                        String text, String where) {
+        check(index.size() == text.length(), where + ": size");
+        check(index.wordCount() == countWords(text), where + ": word count");
+        check(index.lineCount() == countNewlines(text, text.length()) + 1, where + ": line count");
+
+        List<Integer> headings = new ArrayList<>();
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '#' && (i == 0 || text.charAt(i - 1) == '\n')) {
+                headings.add(i);
+            }
+        }
+        check(index.headingCount() == headings.size(), where + ": heading count");
+        for (int k = 0; k < headings.size(); k++) {
+            check(index.indexOf(index.heading(k)) == headings.get(k), where + ": heading " + k);
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            TextIndex.Entry<Integer> e = entries.get(i);
+            check(index.get(i) == e, where + ": get " + i);
+            check(index.indexOf(e) == i, where + ": indexOf " + i);
+            check(index.lineOf(e) == countNewlines(text, i), where + ": lineOf " + i);
+        }
+    }
+
+    static int countWords(String text) {
+        int words = 0;
+        for (int i = 0; i < text.length(); i++) {
+            boolean word = !Character.isWhitespace(text.charAt(i));
+            if (word && (i == 0 || Character.isWhitespace(text.charAt(i - 1)))) {
+                words++;
+            }
+        }
+        return words;
+    }
+
+    // newlines in front of position end
+    static int countNewlines(String text, int end) {
+        int newlines = 0;
+        for (int i = 0; i < end; i++) {
+            if (text.charAt(i) == '\n') {
+                newlines++;
+            }
+        }
+        return newlines;
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package editor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single-character edit addressed by position rather than by Node, so it can be
+ * sent over the wire and transformed against concurrent edits from other sites.
+ *
+ * An insert at position p puts the character in front of whatever is at index p;
+ * a delete at position p removes the character at index p.
+ */
+public final class TextOp {
+
+    enum Type {
+        INSERT, DELETE, NOOP
+    }
+
+    // wire tags for a run of ops, see writeOps
+    static final int TAG_END = 0;
+    static final int TAG_INSERT = 1;
+    static final int TAG_DELETE = 2;
+    static final int TAG_BACKSPACE = 3;
+
+    final Type type;
+    final int position;
+    final char character;
+    final int site;
+
+    private TextOp(Type type, int position, char character, int site) {
+        this.type = type;
+        this.position = position;
+        this.character = character;
+        this.site = site;
+    }
+
+    static TextOp insert(int position, char character, int site) {
+        return new TextOp(Type.INSERT, position, character, site);
+    }
+
+    static TextOp delete(int position, int site) {
+        return delete(position, '\0', site);
+    }
+
+    // remembers the deleted char so the delete can be inverted; it isn't sent on the wire
+    static TextOp delete(int position, char character, int site) {
+        return new TextOp(Type.DELETE, position, character, site);
+    }
+
+    static TextOp noop(int site) {
+        return new TextOp(Type.NOOP, 0, '\0', site);
+    }
+
+    // the op that takes the text back to where it was before this one
+    TextOp inverse() {
+        if (type == Type.INSERT) {
+            return delete(position, character, site);
+        } else if (type == Type.DELETE) {
+            return insert(position, character, site);
+        }
+        return this;
+    }
+
+    private TextOp moveTo(int p) {
+        return new TextOp(type, p, character, site);
+    }
+
+    void applyTo(StringBuilder text) {
+        if (type == Type.INSERT) {
+            text.insert(position, character);
+        } else if (type == Type.DELETE) {
+            text.deleteCharAt(position);
+        }
+    }
+
+    /**
+     * Returns a rewritten so that it has the same effect when applied after b.
+     * Concurrent inserts at the same position are ordered by site id, so both
+     * sides always make the same choice.
+     */
+    static TextOp transform(TextOp a, TextOp b) {
+        if (a.type == Type.NOOP || b.type == Type.NOOP) {
+            return a;
+        }
+        if (b.type == Type.INSERT) {
+            if (a.position < b.position) {
+                return a;
+            }
+            if (a.position == b.position && a.type == Type.INSERT && a.site < b.site) {
+                return a;
+            }
+            return a.moveTo(a.position + 1);
+        }
+        // b is a delete
+        if (a.position < b.position) {
+            return a;
+        }
+        if (a.position > b.position) {
+            return a.moveTo(a.position - 1);
+        }
+        // same position: an insert stays put, a second delete of the same char is dropped
+        if (a.type == Type.INSERT) {
+            return a;
+        }
+        return noop(a.site);
+    }
+
+    /**
+     * Transforms two concurrent sequences of ops against each other. Returns
+     * {a', b'} where a' applies after b and b' applies after a.
+     */
+    static List<List<TextOp>> transform(List<TextOp> a, List<TextOp> b) {
+        List<TextOp> aOut = new ArrayList<>(a);
+        List<TextOp> bOut = new ArrayList<>(b.size());
+        for (TextOp op : b) {
+            TextOp cur = op;
+            for (int i = 0; i < aOut.size(); i++) {
+                TextOp ai = aOut.get(i);
+                aOut.set(i, transform(ai, cur));
+                cur = transform(cur, ai);
+            }
+            bOut.add(cur);
+        }
+        List<List<TextOp>> result = new ArrayList<>(2);
+        result.add(dropNoops(aOut));
+        result.add(dropNoops(bOut));
+        return result;
+    }
+
+    private static List<TextOp> dropNoops(List<TextOp> ops) {
+        List<TextOp> out = new ArrayList<>(ops.size());
+        for (TextOp op : ops) {
+            if (op.type != Type.NOOP) {
+                out.add(op);
+            }
+        }
+        return out;
+    }
+
+    static void writeVarInt(OutputStream out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    static int readVarInt(InputStream in) throws IOException {
+        int v = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (v < 0) {
+                    throw new IOException("Malformed varint");
+                }
+                return v;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new IOException("Malformed varint");
+            }
+        }
+    }
+
+    /**
+     * Writes ops as runs: consecutive typing becomes one insert run with a single
+     * position, and repeated backspace or delete becomes a position plus a count.
+     */
+    static void writeOps(OutputStream out, List<TextOp> ops) throws IOException {
+        int i = 0;
+        while (i < ops.size()) {
+            TextOp first = ops.get(i);
+            int j = i + 1;
+            if (first.type == Type.INSERT) {
+                while (j < ops.size() && ops.get(j).type == Type.INSERT
+                        && ops.get(j).position == ops.get(j - 1).position + 1) {
+                    j++;
+                }
+                out.write(TAG_INSERT);
+                writeVarInt(out, first.position);
+                writeVarInt(out, j - i);
+                for (int k = i; k < j; k++) {
+                    writeVarInt(out, ops.get(k).character);
+                }
+            } else if (first.type == Type.DELETE) {
+                int step = 0;
+                if (j < ops.size() && ops.get(j).type == Type.DELETE
+                        && ops.get(j).position == first.position - 1) {
+                    step = -1;
+                }
+                while (j < ops.size() && ops.get(j).type == Type.DELETE
+                        && ops.get(j).position == ops.get(j - 1).position + step) {
+                    j++;
+                }
+                out.write(step == 0 ? TAG_DELETE : TAG_BACKSPACE);
+                writeVarInt(out, first.position);
+                writeVarInt(out, j - i);
+            }
+            i = j;
+        }
+        out.write(TAG_END);
+    }
+
+    static List<TextOp> readOps(InputStream in, int site) throws IOException {
+        return readOps(in, site, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads ops written by writeOps. textLength is the longest the sender's text can
+     * be; a delete run can't remove more than that, so a bad count is rejected before
+     * anything is built.
+     */
+    static List<TextOp> readOps(InputStream in, int site, int textLength) throws IOException {
+        List<TextOp> ops = new ArrayList<>();
+        long length = textLength;
+        while (true) {
+            int tag = in.read();
+            if (tag == TAG_END) {
+                return ops;
+            }
+            if (tag == -1) {
+                throw new EOFException();
+            }
+            if (tag != TAG_INSERT && tag != TAG_DELETE && tag != TAG_BACKSPACE) {
+                throw new IOException("Unknown op tag " + tag);
+            }
+            int position = readVarInt(in);
+            int count = readVarInt(in);
+            if (tag != TAG_INSERT && count > length) {
+                throw new IOException("Delete run longer than the text");
+            }
+            length += tag == TAG_INSERT ? count : -count;
+            for (int k = 0; k < count; k++) {
+                if (tag == TAG_INSERT) {
+                    ops.add(insert(position + k, (char) readVarInt(in), site));
+                } else if (tag == TAG_DELETE) {
+                    ops.add(delete(position, site));
+                } else {
+                    ops.add(delete(position - k, site));
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (type == Type.INSERT) {
+            return "insert(" + position + ", '" + character + "')@" + site;
+        } else if (type == Type.DELETE) {
+            return "delete(" + position + ")@" + site;
+        }
+        return "noop@" + site;
+    }
+}